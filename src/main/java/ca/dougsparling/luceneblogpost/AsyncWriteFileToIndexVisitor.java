@@ -11,6 +11,7 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -18,15 +19,20 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
-import org.apache.lucene.index.IndexWriter;
 
 final class AsyncWriteFileToIndexVisitor extends SimpleFileVisitor<Path> {
 
-	private final IndexWriter writer;
+	private final Path docRoot;
+	private final IndexingProgress progress;
 	private final Executor executor;
 
-	public AsyncWriteFileToIndexVisitor(IndexWriter writer, Executor executor) {
-		this.writer = writer;
+	/**
+	 * @param docRoot the directory being walked; files are identified to
+	 * {@link IndexingProgress} by their path relative to it
+	 */
+	public AsyncWriteFileToIndexVisitor(Path docRoot, IndexingProgress progress, Executor executor) {
+		this.docRoot = docRoot;
+		this.progress = progress;
 		this.executor = executor;
 	}
 
@@ -34,26 +40,51 @@ final class AsyncWriteFileToIndexVisitor extends SimpleFileVisitor<Path> {
 	public FileVisitResult visitFile(Path path, BasicFileAttributes attrs)
 			throws IOException {
 		
-		executor.execute(() -> indexPath(path));
+		if (progress.hasFailed()) {
+			return FileVisitResult.TERMINATE;
+		}
+		
+		String id = docRoot.relativize(path).toString();
+		
+		if (!progress.isCompleted(id)) {
+			try {
+				executor.execute(() -> indexPath(path, id));
+			} catch (RejectedExecutionException e) {
+				// the executor is only shut down early once indexing has failed
+				return FileVisitResult.TERMINATE;
+			}
+		}
 		
 		return FileVisitResult.CONTINUE;
 	}
 	
-	private void indexPath(Path path) {
+	private void indexPath(Path path, String id) {
+		if (progress.hasFailed()) {
+			return;
+		}
+		
 		String baseFileName = path.getFileName().toString();
 
 		try (InputStream textStream = Files.newInputStream(path)) {
 			if (isZipFile(baseFileName)) {
-				indexZipFile(baseFileName, textStream);
+				indexZipFile(id, baseFileName, textStream);
+				progress.markCompleted(id);
 			} else if (isTextFile(baseFileName)) {
-				indexStream(textStream, baseFileName);
+				indexStream(textStream, id, baseFileName);
 			}
 		} catch (IOException e) {
-			System.err.println("Error indexing (" + path + "): " + e.getMessage());
+			if (!progress.hasFailed()) {
+				System.err.println("Error indexing (" + path + "): " + e.getMessage());
+			}
+		} catch (RuntimeException e) {
+			// otherwise the pool thread dies with only a bare stack trace
+			if (!progress.hasFailed()) {
+				System.err.println("Error indexing (" + path + "): " + e);
+			}
 		}
 	}
 
-	private void indexZipFile(String baseFileName, InputStream textStream) throws IOException {
+	private void indexZipFile(String id, String baseFileName, InputStream textStream) throws IOException {
 		
 		ZipInputStream zipInputStream = new ZipInputStream(textStream, StandardCharsets.UTF_8) {
 			
@@ -64,16 +95,19 @@ final class AsyncWriteFileToIndexVisitor extends SimpleFileVisitor<Path> {
 			}
 		};
 
-		for (ZipEntry zippedFile = zipInputStream.getNextEntry(); zippedFile != null; zippedFile = zipInputStream.getNextEntry()) {
+		for (ZipEntry zippedFile = zipInputStream.getNextEntry(); zippedFile != null && !progress.hasFailed(); zippedFile = zipInputStream.getNextEntry()) {
 			String fileName = zippedFile.getName();
 			
-			if (isTextFile(fileName)) {
-				indexStream(zipInputStream, baseFileName + ":" + fileName);
+			String entryId = id + ":" + fileName;
+			
+			// entries indexed before the last checkpoint are still read past, but not indexed again
+			if (isTextFile(fileName) && !progress.isCompleted(entryId)) {
+				indexStream(zipInputStream, entryId, baseFileName + ":" + fileName);
 			}
 		}
 	}
 
-	private void indexStream(InputStream inputStream, String title) throws IOException {
+	private void indexStream(InputStream inputStream, String id, String title) throws IOException {
 		
 		System.out.printf("Indexing %s\n", title);
 		
@@ -83,7 +117,7 @@ final class AsyncWriteFileToIndexVisitor extends SimpleFileVisitor<Path> {
 		document.add(new StringField("title", title, Store.YES));
 		document.add(new TextField("body", reader));
 
-		writer.addDocument(document);
+		progress.addDocument(id, title, document);
 	}
 	
 	private boolean isTextFile(String fileName) {
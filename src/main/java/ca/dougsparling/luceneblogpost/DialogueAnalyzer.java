@@ -8,9 +8,24 @@ import org.apache.lucene.analysis.core.StopFilter;
 
 import ca.dougsparling.luceneblogpost.filter.DialoguePayloadTokenFilter;
 import ca.dougsparling.luceneblogpost.filter.QuotationTokenFilter;
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatisticsCollector;
 import ca.dougsparling.luceneblogpost.tokenizer.QuotationTokenizer;
 
 public class DialogueAnalyzer extends Analyzer {
+	
+	private final DialogueTermStatisticsCollector statistics;
+	
+	public DialogueAnalyzer() {
+		this(null);
+	}
+	
+	/**
+	 * @param statistics if not null, collects dialogue statistics for every
+	 * analyzed term; only pass one when analyzing documents for indexing
+	 */
+	public DialogueAnalyzer(DialogueTermStatisticsCollector statistics) {
+		this.statistics = statistics;
+	}
 
 	@Override
 	protected TokenStreamComponents createComponents(String fieldName) {
@@ -19,7 +34,7 @@ public class DialogueAnalyzer extends Analyzer {
 		TokenFilter filter = new QuotationTokenFilter(tokenizer);
 		filter = new LowerCaseFilter(filter);
 		filter = new StopFilter(filter, StopAnalyzer.ENGLISH_STOP_WORDS_SET);
-		filter = new DialoguePayloadTokenFilter(filter);
+		filter = new DialoguePayloadTokenFilter(filter, statistics);
 		
 		return new TokenStreamComponents(tokenizer, filter);
 	}
@@ -0,0 +1,87 @@
+package ca.dougsparling.luceneblogpost;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+
+import ca.dougsparling.luceneblogpost.search.DialogueAwareSimilarity;
+import ca.dougsparling.luceneblogpost.search.DialogueTermIndex;
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatistics;
+
+/**
+ * <p>Everything needed to query one commit of the index: the reader and
+ * searcher, plus the dialogue statistics and term index written with that
+ * commit. Keeping them together means a query never mixes one build's
+ * postings with another build's statistics.
+ *
+ * <p>A generation is reference counted through its reader. The term index is
+ * closed when the reader is.
+ */
+final class IndexGeneration {
+
+	private final DirectoryReader reader;
+	private final IndexSearcher searcher;
+	private final DialogueTermStatistics termStatistics;
+	private final DialogueTermIndex termIndex;
+
+	private IndexGeneration(DirectoryReader reader, DialogueTermStatistics termStatistics, DialogueTermIndex termIndex) {
+		this.reader = reader;
+		this.termStatistics = termStatistics;
+		this.termIndex = termIndex;
+
+		this.searcher = new IndexSearcher(reader);
+		this.searcher.setSimilarity(new DialogueAwareSimilarity());
+	}
+
+	/**
+	 * Wraps a newly opened reader, taking ownership of it: if the rest of the
+	 * generation can't be loaded, the reader is closed.
+	 */
+	static IndexGeneration open(Path indexPath, Directory indexDir, DirectoryReader reader) throws IOException {
+		boolean success = false;
+		try {
+			Map<String, String> commitData = reader.getIndexCommit().getUserData();
+
+			// either may be null if the index was built without them
+			DialogueTermStatistics termStatistics = DialogueTermStatistics.read(indexDir, commitData);
+			DialogueTermIndex termIndex = DialogueTermIndex.open(indexPath, commitData);
+
+			if (termIndex != null) {
+				reader.addReaderClosedListener(closed -> termIndex.close());
+			}
+
+			success = true;
+			return new IndexGeneration(reader, termStatistics, termIndex);
+		} finally {
+			if (!success) {
+				reader.close();
+			}
+		}
+	}
+
+	DirectoryReader getReader() {
+		return reader;
+	}
+
+	IndexSearcher getSearcher() {
+		return searcher;
+	}
+
+	/**
+	 * @return statistics for this generation, or null if it has none
+	 */
+	DialogueTermStatistics getTermStatistics() {
+		return termStatistics;
+	}
+
+	/**
+	 * @return the term index for this generation, or null if it has none
+	 */
+	DialogueTermIndex getTermIndex() {
+		return termIndex;
+	}
+}
@@ -0,0 +1,92 @@
+package ca.dougsparling.luceneblogpost;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.store.Directory;
+
+/**
+ * <p>Hands out the current {@link IndexGeneration} and swaps in a new one when
+ * the indexer commits a finished build, in the manner of Lucene's
+ * {@link org.apache.lucene.search.SearcherManager}.
+ *
+ * <p>{@link #maybeRefresh()} opens and warms the new generation on the calling
+ * thread (typically a background one) before publishing it. Queries that
+ * already {@link #acquire() acquired} the old generation keep using it, and
+ * it is closed once the last of them {@link #release(Object) releases} it.
+ *
+ * <p>Checkpoints of a build still in progress are never swapped in, as they
+ * contain only part of the corpus.
+ */
+final class IndexGenerationManager extends ReferenceManager<IndexGeneration> {
+
+	/**
+	 * Prepares a new generation before any query sees it, e.g. by running
+	 * typical queries to load the relevant parts of the index into memory.
+	 */
+	interface Warmer {
+		void warm(IndexGeneration generation) throws IOException;
+	}
+
+	private final Path indexPath;
+	private final Directory indexDir;
+	private final Warmer warmer;
+
+	IndexGenerationManager(Path indexPath, Directory indexDir, Warmer warmer) throws IOException {
+		this.indexPath = indexPath;
+		this.indexDir = indexDir;
+		this.warmer = warmer;
+
+		// the first generation is taken as is, even if it is an unfinished build,
+		// as there is nothing else to query yet
+		this.current = IndexGeneration.open(indexPath, indexDir, DirectoryReader.open(indexDir));
+	}
+
+	@Override
+	protected IndexGeneration refreshIfNeeded(IndexGeneration referenceToRefresh) throws IOException {
+		List<IndexCommit> commits = DirectoryReader.listCommits(indexDir);
+		IndexCommit latest = commits.get(commits.size() - 1);
+
+		if (IndexingProgress.isInProgress(latest.getUserData())) {
+			return null;
+		}
+
+		DirectoryReader newReader = DirectoryReader.openIfChanged(referenceToRefresh.getReader(), latest);
+		if (newReader == null) {
+			return null;
+		}
+
+		IndexGeneration generation = IndexGeneration.open(indexPath, indexDir, newReader);
+
+		boolean success = false;
+		try {
+			warmer.warm(generation);
+			success = true;
+		} finally {
+			if (!success) {
+				newReader.close();
+			}
+		}
+
+		return generation;
+	}
+
+	@Override
+	protected boolean tryIncRef(IndexGeneration reference) {
+		return reference.getReader().tryIncRef();
+	}
+
+	@Override
+	protected void decRef(IndexGeneration reference) throws IOException {
+		reference.getReader().decRef();
+	}
+
+	@Override
+	protected int getRefCount(IndexGeneration reference) {
+		return reference.getReader().getRefCount();
+	}
+}
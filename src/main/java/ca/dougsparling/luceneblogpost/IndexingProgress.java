@@ -0,0 +1,263 @@
+package ca.dougsparling.luceneblogpost;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatistics;
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatisticsCollector;
+
+/**
+ * <p>Tracks which files and zip entries have been indexed, and records them in
+ * the commit user data of each checkpoint so an interrupted build can pick up
+ * where its last checkpoint left off.
+ *
+ * <p>Adding a document and marking it complete happen together under a shared
+ * lock, while a checkpoint holds the exclusive lock. A commit therefore
+ * contains exactly the documents listed as complete in its user data, and
+ * resuming never adds a document twice. The lock is only held while the
+ * commit is prepared; statistics are written from a copy, and the commit
+ * finished, while indexing continues.
+ *
+ * <p>Once the writer has been closed underneath it, e.g. rolled back after a
+ * checkpoint failed halfway, progress is marked {@link #hasFailed() failed}:
+ * nothing more can be added or committed, and the build should stop rather
+ * than carry on against a dead writer.
+ *
+ * <p>Ids are only unique within one document root, so a checkpoint also
+ * records the root it was taken from, and is only resumed by a build of that
+ * same root.
+ */
+final class IndexingProgress {
+
+	private static final String STATUS_KEY = "indexing.status";
+	private static final String COMPLETED_KEY = "indexing.completed";
+	private static final String CHECKPOINT_KEY = "indexing.checkpoint";
+	private static final String DOC_ROOT_KEY = "indexing.docRoot";
+
+	private static final String STATUS_IN_PROGRESS = "in-progress";
+	private static final String STATUS_COMPLETE = "complete";
+
+	// ids are relative paths, which can't contain newlines on any sane filesystem
+	private static final String COMPLETED_SEPARATOR = "\n";
+
+	private final IndexWriter writer;
+	private final DialogueTermStatisticsCollector statistics;
+	private final String docRoot;
+
+	private final Set<String> completed = ConcurrentHashMap.newKeySet();
+	private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+	private long checkpoint;
+
+	private volatile Throwable failure;
+
+	/**
+	 * @param docRoot the directory ids are relative to
+	 * @param commitData user data of the commit being resumed, or empty when starting over
+	 */
+	IndexingProgress(IndexWriter writer, DialogueTermStatisticsCollector statistics, Path docRoot, Map<String, String> commitData) {
+		this.writer = writer;
+		this.statistics = statistics;
+		this.docRoot = docRootKey(docRoot);
+
+		String completedIds = commitData.get(COMPLETED_KEY);
+		if (completedIds != null && !completedIds.isEmpty()) {
+			completed.addAll(Arrays.asList(completedIds.split(COMPLETED_SEPARATOR)));
+		}
+
+		String lastCheckpoint = commitData.get(CHECKPOINT_KEY);
+		this.checkpoint = lastCheckpoint == null ? 0 : Long.parseLong(lastCheckpoint);
+	}
+
+	/**
+	 * @return user data of the latest commit if it belongs to an unfinished
+	 * build of the given document root, or empty if there is nothing to resume
+	 */
+	static Map<String, String> findResumableCommit(Directory dir, Path docRoot) throws IOException {
+		if (!DirectoryReader.indexExists(dir)) {
+			return Collections.emptyMap();
+		}
+
+		Map<String, String> commitData = SegmentInfos.readLatestCommit(dir).getUserData();
+		if (!isInProgress(commitData)) {
+			return Collections.emptyMap();
+		}
+		if (!docRootKey(docRoot).equals(commitData.get(DOC_ROOT_KEY))) {
+			System.out.printf("Unfinished index belongs to %s, starting over\n", commitData.get(DOC_ROOT_KEY));
+			return Collections.emptyMap();
+		}
+		return commitData;
+	}
+
+	private static String docRootKey(Path docRoot) {
+		return docRoot.toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * @return true if the commit is a checkpoint of a build that hasn't finished yet
+	 */
+	static boolean isInProgress(Map<String, String> commitData) {
+		return STATUS_IN_PROGRESS.equals(commitData.get(STATUS_KEY));
+	}
+
+	int completedCount() {
+		return completed.size();
+	}
+
+	boolean isCompleted(String id) {
+		return completed.contains(id);
+	}
+
+	/**
+	 * @return true if the writer can no longer be used, so indexing should stop
+	 */
+	boolean hasFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * @throws IOException if the writer can no longer be used, with the reason as its cause
+	 */
+	void checkFailed() throws IOException {
+		Throwable cause = failure;
+		if (cause != null) {
+			throw new IOException("Indexing stopped, as the index writer was closed", cause);
+		}
+	}
+
+	private void fail(Throwable cause) {
+		if (failure == null) {
+			failure = cause;
+		}
+	}
+
+	/**
+	 * Adds a document and, in the same step with respect to checkpoints, marks it complete.
+	 */
+	void addDocument(String id, String title, Document document) throws IOException {
+		checkFailed();
+
+		checkpointLock.readLock().lock();
+		try {
+			try {
+				writer.addDocument(document);
+			} catch (IOException | RuntimeException e) {
+				statistics.discardDocument();
+				if (e instanceof AlreadyClosedException) {
+					fail(e);
+				}
+				throw e;
+			}
+
+			// the writer analyzed the document on this thread, so its terms are ready to attribute
+			statistics.finishDocument(title);
+			completed.add(id);
+		} finally {
+			checkpointLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Marks an id complete without adding a document, e.g. a zip file whose
+	 * entries have all been added.
+	 */
+	void markCompleted(String id) {
+		checkpointLock.readLock().lock();
+		try {
+			completed.add(id);
+		} finally {
+			checkpointLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Commits everything added so far, recording progress so it can be resumed.
+	 */
+	void checkpoint() throws IOException {
+		commit(STATUS_IN_PROGRESS, Collections.emptyMap());
+	}
+
+	/**
+	 * Commits the finished index. Progress is no longer needed, as the next run
+	 * starts a new index.
+	 *
+	 * @param extraCommitData additional user data for the final commit, such as
+	 * the location of auxiliary indexes
+	 */
+	void finish(Map<String, String> extraCommitData) throws IOException {
+		commit(STATUS_COMPLETE, extraCommitData);
+	}
+
+	private synchronized void commit(String status, Map<String, String> extraCommitData) throws IOException {
+		checkFailed();
+		try {
+			prepareAndCommit(status, extraCommitData);
+		} catch (AlreadyClosedException e) {
+			fail(e);
+			throw e;
+		}
+	}
+
+	private void prepareAndCommit(String status, Map<String, String> extraCommitData) throws IOException {
+		DialogueTermStatistics committedStatistics;
+		String statisticsFile;
+
+		// only capturing what the commit contains needs indexing paused; the
+		// slow parts (writing the statistics and finishing the commit) don't
+		checkpointLock.writeLock().lock();
+		try {
+			checkpoint++;
+			statisticsFile = DialogueTermStatistics.fileName(checkpoint);
+			committedStatistics = statistics.getStatistics().copy();
+
+			Map<String, String> commitData = new HashMap<>(extraCommitData);
+			commitData.put(STATUS_KEY, status);
+			commitData.put(DOC_ROOT_KEY, docRoot);
+			if (STATUS_IN_PROGRESS.equals(status)) {
+				commitData.put(COMPLETED_KEY, String.join(COMPLETED_SEPARATOR, completed));
+			}
+			commitData.put(CHECKPOINT_KEY, Long.toString(checkpoint));
+			commitData.put(DialogueTermStatistics.COMMIT_DATA_KEY, statisticsFile);
+
+			writer.setCommitData(commitData);
+			writer.prepareCommit();
+		} finally {
+			checkpointLock.writeLock().unlock();
+		}
+
+		// statistics go in their own file per checkpoint, so a crash before the
+		// commit below leaves the previous commit's statistics untouched
+		try {
+			committedStatistics.write(writer.getDirectory(), statisticsFile);
+		} catch (IOException | RuntimeException e) {
+			// the prepared commit names a statistics file that doesn't exist, and
+			// can't be abandoned without closing the writer; the next run resumes
+			// from the previous checkpoint
+			fail(e);
+			try {
+				writer.rollback();
+			} catch (IOException | RuntimeException rollbackFailure) {
+				e.addSuppressed(rollbackFailure);
+			}
+			throw e;
+		}
+		writer.commit();
+
+		DialogueTermStatistics.deleteUnreferenced(writer.getDirectory(), statisticsFile);
+	}
+}
@@ -4,8 +4,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -16,38 +19,124 @@ import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 
+import ca.dougsparling.luceneblogpost.search.DialogueTermIndex;
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatistics;
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatisticsCollector;
+
 /**
- * Recursively indexes a directory full of text files (or zip files containing
+ * <p>Recursively indexes a directory full of text files (or zip files containing
  * text files). The index is written to a directory, which will be overwritten if
  * necessary.
+ * 
+ * <p>Progress is committed periodically. If a previous run was interrupted,
+ * indexing resumes from its last checkpoint instead, skipping every file and
+ * zip entry that checkpoint already contains. A checkpoint of a different
+ * document directory is never resumed; the index is started over instead.
+ * 
+ * <p>Corpus-wide dialogue statistics for each term are written alongside the
+ * index; see {@link DialogueTermStatistics}. So is a {@link DialogueTermIndex} of
+ * those terms, for expanding fuzzy and wildcard queries.
  */
 public class LuceneIndexerApp {
 	
+	private static final int TOP_BOOKS_PER_TERM = 10;
+	private static final long DEFAULT_CHECKPOINT_INTERVAL_SECONDS = 60;
+	
 	private final Path indexPath;
+	private final long checkpointIntervalSeconds;
+	
+	private long forceMergeMillis;
 
 	public LuceneIndexerApp(Path indexPath) {
+		this(indexPath, DEFAULT_CHECKPOINT_INTERVAL_SECONDS);
+	}
+
+	public LuceneIndexerApp(Path indexPath, long checkpointIntervalSeconds) {
 		this.indexPath = indexPath;
+		this.checkpointIntervalSeconds = checkpointIntervalSeconds;
 	}
 
-	private void addToIndex(Path docPath) throws IOException, InterruptedException {
+	void addToIndex(Path docPath) throws IOException, InterruptedException {
 		Directory indexDir = FSDirectory.open(this.indexPath);
 		
-		Analyzer indexAnalyzer = new DialogueAnalyzer();
+		Map<String, String> resumeFrom = IndexingProgress.findResumableCommit(indexDir, docPath);
+		boolean resuming = !resumeFrom.isEmpty();
+		
+		DialogueTermStatistics existingStatistics = resuming ? DialogueTermStatistics.read(indexDir, resumeFrom) : null;
+		DialogueTermStatisticsCollector statistics = new DialogueTermStatisticsCollector(
+				existingStatistics != null ? existingStatistics : new DialogueTermStatistics(TOP_BOOKS_PER_TERM));
+		Analyzer indexAnalyzer = new DialogueAnalyzer(statistics);
 		
 		IndexWriterConfig writerConfig = new IndexWriterConfig(indexAnalyzer);
-		writerConfig.setOpenMode(OpenMode.CREATE);
+		writerConfig.setOpenMode(resuming ? OpenMode.APPEND : OpenMode.CREATE);
+		// anything not covered by a checkpoint must be discarded, or a resumed run would add it twice
+		writerConfig.setCommitOnClose(false);
 		
 		ExecutorService threadPoolExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		ScheduledExecutorService checkpointExecutor = Executors.newSingleThreadScheduledExecutor();
 		
 		try (IndexWriter writer = new IndexWriter(indexDir, writerConfig)) {
-			AsyncWriteFileToIndexVisitor fileAsyncIndexer = new AsyncWriteFileToIndexVisitor(writer, threadPoolExecutor);
+			IndexingProgress progress = new IndexingProgress(writer, statistics, docPath, resumeFrom);
+			
+			if (resuming) {
+				System.out.printf("Resuming from checkpoint, %d files and entries already indexed\n", progress.completedCount());
+			}
+			
+			checkpointExecutor.scheduleWithFixedDelay(() -> checkpoint(progress, threadPoolExecutor),
+					checkpointIntervalSeconds, checkpointIntervalSeconds, TimeUnit.SECONDS);
+			
+			AsyncWriteFileToIndexVisitor fileAsyncIndexer = new AsyncWriteFileToIndexVisitor(docPath, progress, threadPoolExecutor);
 			Files.walkFileTree(docPath, fileAsyncIndexer);
+			progress.checkFailed();
 			threadPoolExecutor.shutdown();
-			threadPoolExecutor.awaitTermination(1, TimeUnit.HOURS);
+			threadPoolExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			progress.checkFailed();
+			
+			checkpointExecutor.shutdown();
+			checkpointExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			
+			// everything is indexed, so a crash during the merge only needs the merge redone
+			progress.checkpoint();
+			
+			long mergeStart = System.nanoTime();
 			writer.forceMerge(1, true);
+			forceMergeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mergeStart);
+			
+			// every document is in, so the statistics are final and the term index can be built from them
+			String termIndexName = DialogueTermIndex.build(indexPath, statistics.getStatistics());
+			progress.finish(Collections.singletonMap(DialogueTermIndex.COMMIT_DATA_KEY, termIndexName));
+			DialogueTermIndex.deleteUnreferenced(indexPath, termIndexName);
+		} finally {
+			threadPoolExecutor.shutdownNow();
+			checkpointExecutor.shutdownNow();
 		}
 	}
 	
+	private void checkpoint(IndexingProgress progress, ExecutorService indexingExecutor) {
+		if (progress.hasFailed()) {
+			return;
+		}
+		
+		try {
+			progress.checkpoint();
+		} catch (IOException | RuntimeException e) {
+			// an exception escaping a scheduled task would silently cancel every later checkpoint
+			System.err.println("Error committing checkpoint: " + e);
+			
+			if (progress.hasFailed()) {
+				// the writer is gone, so stop indexing instead of failing on every remaining file
+				indexingExecutor.shutdownNow();
+			}
+		}
+	}
+	
+	/**
+	 * Time spent in the final force merge of the most recent {@link #addToIndex(Path)}.
+	 */
+	long getForceMergeMillis() {
+		return forceMergeMillis;
+	}
+	
 	public static void main(String... args) throws IOException, ParseException, InterruptedException {
 		if (args.length != 2) {
 			System.err.println("Usage: LuceneIndexerApp pathToNewIndex pathToDocuments");
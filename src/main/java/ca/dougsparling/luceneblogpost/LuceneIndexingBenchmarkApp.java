@@ -0,0 +1,183 @@
+package ca.dougsparling.luceneblogpost;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
+
+import ca.dougsparling.luceneblogpost.corpus.DialogueCorpusGenerator;
+
+/**
+ * <p>Generates a synthetic corpus with {@link DialogueCorpusGenerator}, indexes
+ * it with {@link LuceneIndexerApp} and reports indexing throughput, peak heap
+ * usage (sampled while indexing), index size and time spent in the final merge.
+ *
+ * <p>The corpus and index are written under the given working directory. The
+ * corpus directory is named after the generator arguments and reused when a
+ * previous run finished generating it, so repeated runs only measure indexing.
+ * A partially generated corpus, e.g. from an interrupted run, is generated again.
+ * The index is always built from scratch, so every run measures a full build.
+ */
+public class LuceneIndexingBenchmarkApp {
+
+	private static final double MB = 1024.0 * 1024.0;
+
+	// written once generation finishes, holding the corpus's uncompressed size in bytes;
+	// ignored by the indexer, which only reads .txt and .zip files
+	private static final String CORPUS_COMPLETE_MARKER = "corpus.complete";
+
+	public static void main(String... args) throws IOException, InterruptedException {
+		if (args.length != 6) {
+			System.err.println("Usage: LuceneIndexingBenchmarkApp pathToWorkDir documents documentsPerZip wordsPerDocument dialogueRatio seed");
+			System.exit(1);
+		}
+
+		Path workDir = Paths.get(args[0]);
+		int documents = Integer.parseInt(args[1]);
+		int documentsPerZip = Integer.parseInt(args[2]);
+		int wordsPerDocument = Integer.parseInt(args[3]);
+		double dialogueRatio = Double.parseDouble(args[4]);
+		long seed = Long.parseLong(args[5]);
+
+		Path corpusPath = workDir.resolve("corpus-" + String.join("-", args[1], args[2], args[3], args[4], args[5]));
+		Path indexPath = workDir.resolve("index");
+
+		DialogueCorpusGenerator generator = new DialogueCorpusGenerator(seed, wordsPerDocument, dialogueRatio);
+
+		Path corpusMarker = corpusPath.resolve(CORPUS_COMPLETE_MARKER);
+
+		long corpusBytes = readCorpusMarker(corpusMarker);
+		if (corpusBytes >= 0) {
+			System.out.printf("Reusing corpus at %s\n", corpusPath);
+		} else {
+			if (Files.exists(corpusPath)) {
+				System.out.printf("Regenerating incomplete corpus at %s\n", corpusPath);
+				deleteRecursively(corpusPath);
+			}
+			corpusBytes = generator.generate(corpusPath, documents, documentsPerZip);
+			writeCorpusMarker(corpusMarker, corpusBytes);
+		}
+
+		if (Files.exists(indexPath)) {
+			// never resume another run's checkpoint, which would skip most of the corpus
+			deleteRecursively(indexPath);
+		}
+
+		System.gc();
+
+		LuceneIndexerApp indexer = new LuceneIndexerApp(indexPath);
+		long peakHeapBytes;
+		long elapsedMillis;
+		try (HeapSampler heap = new HeapSampler()) {
+			long start = System.nanoTime();
+			indexer.addToIndex(corpusPath);
+			elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			peakHeapBytes = heap.peak();
+		}
+
+		int indexedDocs;
+		try (DirectoryReader reader = DirectoryReader.open(FSDirectory.open(indexPath))) {
+			indexedDocs = reader.numDocs();
+		}
+
+		double seconds = Math.max(elapsedMillis, 1) / 1000.0;
+
+		System.out.println("--- Indexing benchmark ---");
+		System.out.printf("documents:    %d\n", indexedDocs);
+		System.out.printf("input:        %.1f MB\n", corpusBytes / MB);
+		System.out.printf("elapsed:      %.2f s\n", seconds);
+		System.out.printf("throughput:   %.1f docs/s, %.2f MB/s\n", indexedDocs / seconds, corpusBytes / MB / seconds);
+		System.out.printf("merge time:   %.2f s\n", indexer.getForceMergeMillis() / 1000.0);
+		System.out.printf("peak heap:    %.1f MB\n", peakHeapBytes / MB);
+		System.out.printf("index size:   %.1f MB\n", directorySize(indexPath) / MB);
+	}
+
+	/**
+	 * @return the uncompressed corpus size recorded when generation finished,
+	 * or -1 if the corpus is missing or was never completely generated
+	 */
+	private static long readCorpusMarker(Path marker) throws IOException {
+		if (!Files.exists(marker)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Records the corpus size, as zipped documents on disk don't reflect the
+	 * amount of text indexed. The marker only appears once fully written.
+	 */
+	private static void writeCorpusMarker(Path marker, long corpusBytes) throws IOException {
+		Path tempMarker = marker.resolveSibling(marker.getFileName() + ".tmp");
+		Files.write(tempMarker, Long.toString(corpusBytes).getBytes(StandardCharsets.UTF_8));
+		Files.move(tempMarker, marker, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static long directorySize(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+		}
+	}
+
+	private static void deleteRecursively(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	/**
+	 * Tracks the highest total heap usage seen while open. Memory pools each
+	 * keep their own peak, but those peaks are reached at different times, so
+	 * summing them would overstate the heap actually in use at any moment.
+	 */
+	private static final class HeapSampler implements AutoCloseable {
+
+		private static final long INTERVAL_MILLIS = 20;
+
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "heap-sampler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		private final AtomicLong peak = new AtomicLong();
+
+		HeapSampler() {
+			sampler.scheduleAtFixedRate(this::sample, 0, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+
+		private void sample() {
+			long used = memory.getHeapMemoryUsage().getUsed();
+			peak.accumulateAndGet(used, Math::max);
+		}
+
+		long peak() {
+			sample();
+			return peak.get();
+		}
+
+		@Override
+		public void close() {
+			sampler.shutdownNow();
+		}
+	}
+}
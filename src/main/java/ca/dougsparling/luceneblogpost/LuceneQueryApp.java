@@ -5,53 +5,169 @@ import static java.util.Collections.singleton;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.search.BooleanClause.Occur;
-import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.PositiveScoresOnlyCollector;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager.RefreshListener;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopScoreDocCollector;
-import org.apache.lucene.search.payloads.AveragePayloadFunction;
-import org.apache.lucene.search.payloads.PayloadTermQuery;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 
-import ca.dougsparling.luceneblogpost.search.DialogueAwareSimilarity;
+import ca.dougsparling.luceneblogpost.search.DialogueQueryPlanner;
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatistics;
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatistics.TermStatistics;
 
+/**
+ * <p>Interactively queries an index built by {@link LuceneIndexerApp} for documents
+ * with every term in dialogue. Words may be fuzzy ({@code hermoine~}) or contain
+ * wildcards ({@code herm*}); see {@link DialogueQueryPlanner}. Entering
+ * {@code #term} instead shows corpus-wide dialogue statistics for that term.
+ * 
+ * <p>The index directory is polled for newly finished builds, which are warmed
+ * with recent queries in the background and then swapped in without a restart.
+ */
 public class LuceneQueryApp {
+	
+	private static final String STATISTICS_PREFIX = "#";
+	private static final long REFRESH_INTERVAL_SECONDS = 5;
+	private static final int WARMING_QUERIES = 16;
 
-	private final IndexReader reader;
-	private final IndexSearcher searcher;
+	private final IndexGenerationManager generations;
+	private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "index-refresher");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private final DialogueQueryPlanner planner = new DialogueQueryPlanner(new DialogueAnalyzer(), "body");
+	private final Deque<String> recentQueries = new ArrayDeque<>();
 	
 	private Scanner stdin = new Scanner(System.in);
 
 	public LuceneQueryApp(Path indexPath) throws IOException {
-		reader = DirectoryReader.open(FSDirectory.open(indexPath));
+		Directory indexDir = FSDirectory.open(indexPath);
 		
-		this.searcher = new IndexSearcher(reader);
-		this.searcher.setSimilarity(new DialogueAwareSimilarity());
-	}
-	
-	private void loop() throws IOException, ParseException {
-		String queryText = askForNextQuery();
-		while(queryText != null) {
+		generations = new IndexGenerationManager(indexPath, indexDir, this::warm);
+		generations.addListener(new RefreshListener() {
 			
-			Query query = buildQuery(queryText);
+			@Override
+			public void beforeRefresh() {
+			}
 			
-			TopDocs results = findTopDocs(query, 10);
-			
-			printQueryResults(query, results);
+			@Override
+			public void afterRefresh(boolean didRefresh) {
+				if (didRefresh) {
+					System.out.println("\n(switched to a newly built index)");
+				}
+			}
+		});
+		
+		refresher.scheduleWithFixedDelay(this::refresh, REFRESH_INTERVAL_SECONDS, REFRESH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+	
+	private void refresh() {
+		try {
+			generations.maybeRefresh();
+		} catch (IOException | RuntimeException e) {
+			// likely caught the indexer mid-commit; the next attempt will see a consistent index
+			System.err.println("Error reopening index: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Runs recent queries against a new generation before it is swapped in, so
+	 * the first real queries don't pay to load its term dictionary and postings.
+	 */
+	private void warm(IndexGeneration generation) throws IOException {
+		List<String> queries;
+		synchronized (recentQueries) {
+			queries = new ArrayList<>(recentQueries);
+		}
+		
+		for (String queryText : queries) {
+			try {
+				Optional<Query> query = planner.plan(generation.getReader(), generation.getTermIndex(), queryText);
+				if (query.isPresent()) {
+					findTopDocs(generation.getSearcher(), query.get(), 10);
+				}
+			} catch (IllegalArgumentException e) {
+				// too broad to expand against this generation's terms, so nothing to warm
+			}
+		}
+	}
+	
+	private void loop() throws IOException, ParseException, InterruptedException {
+		try {
+			String queryText = askForNextQuery();
+			while(queryText != null) {
+				
+				// every query sees a single generation, even if a new one is swapped in meanwhile
+				IndexGeneration generation = generations.acquire();
+				try {
+					if (queryText.startsWith(STATISTICS_PREFIX)) {
+						printTermStatistics(generation, queryText.substring(STATISTICS_PREFIX.length()).trim());
+					} else {
+						runQuery(generation, queryText);
+					}
+				} finally {
+					generations.release(generation);
+				}
+				
+				queryText = askForNextQuery();
+			}
+		} finally {
+			// a refresh still running could otherwise publish a generation after close, leaking it;
+			// not interrupted, as an interrupt closes the index files a refresh is reading
+			refresher.shutdown();
+			refresher.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			generations.close();
+		}
+	}
+
+	private void runQuery(IndexGeneration generation, String queryText) throws IOException, ParseException {
+		Optional<Query> query;
+		try {
+			query = buildQuery(generation, queryText);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		
+		rememberQuery(queryText);
+		
+		if (query.isPresent()) {
+			TopDocs results = findTopDocs(generation.getSearcher(), query.get(), 10);
 			
-			queryText = askForNextQuery();
+			printQueryResults(generation.getSearcher(), query.get(), results);
+		} else {
+			// a term is missing from the index (or none survived analysis), so skip the search
+			System.out.println("No matching documents");
+		}
+	}
+
+	private void rememberQuery(String queryText) {
+		synchronized (recentQueries) {
+			recentQueries.remove(queryText);
+			recentQueries.addFirst(queryText);
+			if (recentQueries.size() > WARMING_QUERIES) {
+				recentQueries.removeLast();
+			}
 		}
 	}
 
@@ -67,34 +183,47 @@ public class LuceneQueryApp {
 		return queryText;
 	}
 
-	private TopDocs findTopDocs(Query query, int topN) throws IOException {
+	private TopDocs findTopDocs(IndexSearcher searcher, Query query, int topN) throws IOException {
 		TopScoreDocCollector collector = TopScoreDocCollector.create(topN);
 		searcher.search(query, new PositiveScoresOnlyCollector(collector));
 		return collector.topDocs();
 	}
 
-	private Query buildQuery(String queryText) throws IOException, ParseException {	
-		BooleanQuery allTermsInDialogue = new BooleanQuery();
-		String[] terms = queryText.split("\\W+");
-		for (String term : terms) {
-			PayloadTermQuery termInDialogueSubquery = new PayloadTermQuery(new Term("body", term), new AveragePayloadFunction());
-			allTermsInDialogue.add(termInDialogueSubquery, Occur.MUST);
-		}		
-		return allTermsInDialogue;
+	private Optional<Query> buildQuery(IndexGeneration generation, String queryText) throws IOException, ParseException {
+		return planner.plan(generation.getReader(), generation.getTermIndex(), queryText);
+	}
+	
+	private void printTermStatistics(IndexGeneration generation, String term) {
+		DialogueTermStatistics termStatistics = generation.getTermStatistics();
+		if (termStatistics == null) {
+			System.out.println("No dialogue statistics available for this index");
+			return;
+		}
+		
+		// terms are stored lowercased, as produced by DialogueAnalyzer
+		TermStatistics stats = termStatistics.get(term.toLowerCase(Locale.ROOT));
+		if (stats == null) {
+			System.out.println("'" + term + "' does not occur in the index");
+			return;
+		}
+		
+		System.out.printf("'%s': %d times in dialogue, %d times outside dialogue\n",
+				term, stats.getInDialogueFrequency(), stats.getOutsideDialogueFrequency());
+		System.out.println("Most often in dialogue in: " + stats.getTopBooks());
 	}
 	
-	private void printQueryResults(Query query, TopDocs results) throws IOException {
+	private void printQueryResults(IndexSearcher searcher, Query query, TopDocs results) throws IOException {
 		for (ScoreDoc result : results.scoreDocs) {
 			Document doc = searcher.doc(result.doc, singleton("title"));
 			
 			System.out.println("--- Document " + doc.getField("title").stringValue() + " ---");
 			
-			Explanation explanation = this.searcher.explain(query, result.doc);
+			Explanation explanation = searcher.explain(query, result.doc);
 			System.out.println(explanation);
 		}
 	}
 
-	public static void main(String[] args) throws IOException, ParseException {
+	public static void main(String[] args) throws IOException, ParseException, InterruptedException {
 		if (args.length != 1) {
 			System.err.println("Usage: LuceneQueryApp pathToExistingIndex");
 			System.exit(1);
@@ -0,0 +1,196 @@
+package ca.dougsparling.luceneblogpost.corpus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * <p>Writes a synthetic corpus of dialogue-heavy books, either as plain text
+ * files or bundled into zip archives, in the layout {@link
+ * ca.dougsparling.luceneblogpost.LuceneIndexerApp} expects.
+ *
+ * <p>Output is fully determined by the seed: each document is generated from
+ * its own {@link Random} derived from the seed and the document number, so the
+ * same arguments always produce byte-identical files.
+ *
+ * <p>Words are drawn from a made-up vocabulary with a roughly Zipfian
+ * distribution, mixed with English stop words, so the term dictionary and
+ * postings resemble those of real prose.
+ */
+public class DialogueCorpusGenerator {
+
+	private static final String[] STOP_WORDS = {
+		"the", "and", "of", "to", "a", "in", "that", "it", "was", "is", "with", "for", "as", "on", "but", "not", "at", "be"
+	};
+
+	private static final String[] SPEECH_VERBS = { "said", "asked", "replied", "whispered", "cried", "answered" };
+
+	private static final String[] SYLLABLES = {
+		"ka", "lo", "ren", "mi", "tha", "vor", "el", "sun", "dra", "pe", "qui", "ost", "bal", "ne", "fir", "gu",
+		"ash", "to", "wen", "cal", "mo", "rie", "zan", "ud", "hel", "ba", "nor", "si", "tre", "ok"
+	};
+
+	private static final int VOCABULARY_SIZE = 20000;
+	private static final int CHARACTER_COUNT = 200;
+	private static final double STOP_WORD_RATIO = 0.4;
+
+	private final long seed;
+	private final int wordsPerDocument;
+	private final double dialogueRatio;
+
+	private final String[] vocabulary;
+	private final String[] characters;
+
+	/**
+	 * @param wordsPerDocument approximate number of words in each generated document
+	 * @param dialogueRatio fraction of sentences, between 0 and 1, that are spoken dialogue
+	 */
+	public DialogueCorpusGenerator(long seed, int wordsPerDocument, double dialogueRatio) {
+		if (dialogueRatio < 0.0 || dialogueRatio > 1.0) {
+			throw new IllegalArgumentException("dialogueRatio must be between 0 and 1: " + dialogueRatio);
+		}
+
+		this.seed = seed;
+		this.wordsPerDocument = wordsPerDocument;
+		this.dialogueRatio = dialogueRatio;
+
+		Random random = new Random(seed);
+		this.vocabulary = buildWords(random, VOCABULARY_SIZE);
+		this.characters = buildWords(random, CHARACTER_COUNT);
+	}
+
+	/**
+	 * Generates documents into the given directory.
+	 *
+	 * @param documentsPerZip if greater than zero, documents are bundled into zip archives
+	 * of this many entries each; otherwise every document is written as a .txt file
+	 * @return the total uncompressed size of all generated documents, in bytes
+	 */
+	public long generate(Path outputDir, int documents, int documentsPerZip) throws IOException {
+		Files.createDirectories(outputDir);
+
+		long totalBytes = 0;
+
+		if (documentsPerZip <= 0) {
+			for (int docNum = 0; docNum < documents; docNum++) {
+				try (OutputStream out = Files.newOutputStream(outputDir.resolve(documentName(docNum)))) {
+					totalBytes += writeDocument(docNum, out);
+				}
+			}
+			return totalBytes;
+		}
+
+		for (int firstDoc = 0; firstDoc < documents; firstDoc += documentsPerZip) {
+			Path zipPath = outputDir.resolve(String.format("books-%06d.zip", firstDoc / documentsPerZip));
+
+			try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(zipPath), StandardCharsets.UTF_8)) {
+				for (int docNum = firstDoc; docNum < Math.min(documents, firstDoc + documentsPerZip); docNum++) {
+					zip.putNextEntry(new ZipEntry(documentName(docNum)));
+					totalBytes += writeDocument(docNum, zip);
+					zip.closeEntry();
+				}
+			}
+		}
+
+		return totalBytes;
+	}
+
+	/**
+	 * Writes a single document to the stream, leaving it open.
+	 *
+	 * @return the number of bytes written
+	 */
+	public long writeDocument(int docNum, OutputStream out) throws IOException {
+		Random random = new Random(seed * 31 + docNum);
+		StringBuilder text = new StringBuilder(wordsPerDocument * 8);
+
+		int words = 0;
+		while (words < wordsPerDocument) {
+			int sentences = 1 + random.nextInt(6);
+			for (int i = 0; i < sentences && words < wordsPerDocument; i++) {
+				words += random.nextDouble() < dialogueRatio ? appendDialogue(random, text) : appendNarration(random, text);
+				text.append(' ');
+			}
+			text.append("\n\n");
+		}
+
+		// don't close: the stream may be a zip archive that still has entries to come
+		byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+		out.write(bytes);
+
+		return bytes.length;
+	}
+
+	private int appendNarration(Random random, StringBuilder text) {
+		int length = 5 + random.nextInt(15);
+		appendCapitalized(text, nextWord(random));
+		for (int i = 1; i < length; i++) {
+			text.append(' ').append(nextWord(random));
+		}
+		text.append('.');
+		return length;
+	}
+
+	private int appendDialogue(Random random, StringBuilder text) {
+		int length = 3 + random.nextInt(12);
+		text.append('"');
+		appendCapitalized(text, nextWord(random));
+		for (int i = 1; i < length; i++) {
+			text.append(' ').append(nextWord(random));
+		}
+		text.append(random.nextBoolean() ? ",\" " : "?\" ");
+		text.append(SPEECH_VERBS[random.nextInt(SPEECH_VERBS.length)]).append(' ');
+		appendCapitalized(text, characters[random.nextInt(characters.length)]);
+		text.append('.');
+		return length + 2;
+	}
+
+	private String nextWord(Random random) {
+		if (random.nextDouble() < STOP_WORD_RATIO) {
+			return STOP_WORDS[random.nextInt(STOP_WORDS.length)];
+		}
+		// log-uniform rank gives the frequency-proportional-to-1/rank shape of natural text
+		int rank = (int) Math.pow(vocabulary.length + 1, random.nextDouble()) - 1;
+		return vocabulary[Math.min(rank, vocabulary.length - 1)];
+	}
+
+	private static void appendCapitalized(StringBuilder text, String word) {
+		text.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+	}
+
+	private static String[] buildWords(Random random, int count) {
+		String[] words = new String[count];
+		for (int i = 0; i < count; i++) {
+			StringBuilder word = new StringBuilder();
+			int syllables = 1 + random.nextInt(3) + (i > count / 10 ? 1 : 0);
+			for (int s = 0; s < syllables; s++) {
+				word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			}
+			words[i] = word.toString();
+		}
+		return words;
+	}
+
+	private static String documentName(int docNum) {
+		return String.format("book-%06d.txt", docNum);
+	}
+
+	public static void main(String... args) throws IOException {
+		if (args.length != 6) {
+			System.err.println("Usage: DialogueCorpusGenerator pathToOutput documents documentsPerZip wordsPerDocument dialogueRatio seed");
+			System.exit(1);
+		}
+
+		DialogueCorpusGenerator generator = new DialogueCorpusGenerator(
+				Long.parseLong(args[5]), Integer.parseInt(args[3]), Double.parseDouble(args[4]));
+		long bytes = generator.generate(Paths.get(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+
+		System.out.printf("Wrote %s documents (%.1f MB) to %s\n", args[1], bytes / (1024.0 * 1024.0), args[0]);
+	}
+}
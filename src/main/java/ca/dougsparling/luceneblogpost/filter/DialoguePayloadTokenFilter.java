@@ -4,22 +4,37 @@ import java.io.IOException;
 
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
 import org.apache.lucene.util.BytesRef;
 
-public class DialoguePayloadTokenFilter extends TokenFilter {
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatisticsCollector;
+
+public final class DialoguePayloadTokenFilter extends TokenFilter {
 
 	private final TypeAttribute typeAttr = getAttribute(TypeAttribute.class);
 	private final PayloadAttribute payloadAttr = addAttribute(PayloadAttribute.class);
+	private final CharTermAttribute termAttr = addAttribute(CharTermAttribute.class);
 	
 	private static final BytesRef PAYLOAD_DIALOGUE = new BytesRef(new byte[] { 1 }); 
 	private static final BytesRef PAYLOAD_NOT_DIALOGUE = new BytesRef(new byte[] { 0 }); 
 	
+	private final DialogueTermStatisticsCollector statistics;
+	
 	private boolean withinDialogue;
 	
 	public DialoguePayloadTokenFilter(TokenStream input) {
+		this(input, null);
+	}
+	
+	/**
+	 * @param statistics if not null, receives every emitted term along with
+	 * whether it occurred within dialogue
+	 */
+	public DialoguePayloadTokenFilter(TokenStream input, DialogueTermStatisticsCollector statistics) {
 		super(input);
+		this.statistics = statistics;
 	}
 	
 	@Override
@@ -49,6 +64,10 @@ public class DialoguePayloadTokenFilter extends TokenFilter {
 		
 		if (hasNext) {
 			payloadAttr.setPayload(withinDialogue ? PAYLOAD_DIALOGUE : PAYLOAD_NOT_DIALOGUE);
+			
+			if (statistics != null) {
+				statistics.record(termAttr.buffer(), termAttr.length(), withinDialogue);
+			}
 		}
 		
 		return hasNext;
@@ -8,7 +8,7 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
 
-public class QuotationTokenFilter extends TokenFilter {
+public final class QuotationTokenFilter extends TokenFilter {
 
 	private static final char QUOTE = '"';
 	
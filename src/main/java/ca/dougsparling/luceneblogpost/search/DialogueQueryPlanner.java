@@ -0,0 +1,252 @@
+package ca.dougsparling.luceneblogpost.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.search.payloads.AveragePayloadFunction;
+import org.apache.lucene.search.payloads.PayloadTermQuery;
+
+/**
+ * <p>Turns free text into a query matching documents containing every term
+ * within dialogue.
+ *
+ * <p>Query text is run through the same analyzer used at index time, so terms
+ * are lowercased and stop words are dropped exactly as they were when the
+ * index was built. Each remaining term is then looked up in the index: if any
+ * term never occurs, no document can match the conjunction and no query is
+ * produced at all, which saves the search entirely. Otherwise, clauses are
+ * ordered rarest first. Lucene's conjunction scorer already leads with its
+ * cheapest clause whatever the order, so this only makes the plan and its
+ * {@code explain} output deterministic.
+ *
+ * <p>With a {@link DialogueTermIndex}, words containing {@code *} or {@code ?}
+ * are expanded as wildcards, and words ending in {@code ~} (optionally
+ * followed by a maximum number of edits, e.g. {@code hermoine~1}) are expanded
+ * to similarly spelled terms. Each such word becomes a clause matching any of
+ * its expansions within dialogue. As the tokenizer would, these words are
+ * lowercased and stripped of everything but letters (and their wildcards), so
+ * e.g. {@code Herm*,} expands the same as {@code herm*}.
+ */
+public final class DialogueQueryPlanner {
+
+	// a word, then the edit count, then any trailing punctuation
+	private static final Pattern FUZZY = Pattern.compile("(.+?)~(\\d*)[^\\p{L}\\d]*");
+	private static final int DEFAULT_MAX_EDITS = 2;
+	private static final int MAX_EDITS = 2;
+
+	private final Analyzer analyzer;
+	private final String fieldName;
+
+	public DialogueQueryPlanner(Analyzer analyzer, String fieldName) {
+		this.analyzer = analyzer;
+		this.fieldName = fieldName;
+	}
+
+	/**
+	 * Plans a query for the given text against the current state of the index,
+	 * without wildcard or fuzzy expansion.
+	 *
+	 * @see #plan(IndexReader, DialogueTermIndex, String)
+	 */
+	public Optional<Query> plan(IndexReader reader, String queryText) throws IOException {
+		return plan(reader, null, queryText);
+	}
+
+	/**
+	 * Plans a query for the given text against the current state of the index.
+	 *
+	 * @param termIndex expands wildcard and fuzzy words; if null, they are
+	 * searched for as plain words
+	 * @return the query to run, or empty if no document in the index could
+	 * possibly match (including when the text contains no indexable terms)
+	 * @throws IllegalArgumentException if a wildcard is too broad to expand, or
+	 * a fuzzy word asks for more edits than can be expanded
+	 */
+	public Optional<Query> plan(IndexReader reader, DialogueTermIndex termIndex, String queryText) throws IOException {
+		List<ClauseCost> costs = new ArrayList<>();
+
+		StringBuilder plainText = new StringBuilder();
+		Set<String> expandable = new LinkedHashSet<>();
+		for (String word : queryText.trim().split("\\s+")) {
+			if (termIndex != null && isWildcard(word)) {
+				expandable.add(tokenChars(word, true));
+			} else if (termIndex != null && FUZZY.matcher(word).matches()) {
+				String fuzzyWord = normalizeFuzzy(word);
+				if (fuzzyWord != null) {
+					expandable.add(fuzzyWord);
+				}
+			} else {
+				plainText.append(word).append(' ');
+			}
+		}
+
+		for (String text : analyze(plainText.toString())) {
+			Term term = new Term(fieldName, text);
+			int docFreq = reader.docFreq(term);
+
+			if (docFreq == 0) {
+				// every term is required, so one missing term means nothing can match
+				return Optional.empty();
+			}
+
+			costs.add(new ClauseCost(termInDialogue(term), docFreq, reader.totalTermFreq(term)));
+		}
+
+		for (String word : expandable) {
+			ClauseCost cost = planExpansion(reader, termIndex, word);
+
+			if (cost == null) {
+				return Optional.empty();
+			}
+
+			costs.add(cost);
+		}
+
+		if (costs.isEmpty()) {
+			return Optional.empty();
+		}
+
+		// for a stable plan and explain output; execution order is up to the conjunction scorer
+		costs.sort(Comparator.comparingLong((ClauseCost cost) -> cost.docFreq)
+				.thenComparingLong(cost -> cost.totalTermFreq));
+
+		if (costs.size() == 1) {
+			return Optional.of(costs.get(0).query);
+		}
+
+		BooleanQuery allTermsInDialogue = new BooleanQuery();
+		for (ClauseCost cost : costs) {
+			allTermsInDialogue.add(cost.query, Occur.MUST);
+		}
+		return Optional.of(allTermsInDialogue);
+	}
+
+	/**
+	 * @return a clause matching any expansion of the word, or null if nothing matches it
+	 */
+	private ClauseCost planExpansion(IndexReader reader, DialogueTermIndex termIndex, String word) throws IOException {
+		List<String> expansions;
+		if (isWildcard(word)) {
+			expansions = termIndex.wildcard(word);
+		} else {
+			// already normalized to letters, a tilde and the edit count
+			int tilde = word.lastIndexOf('~');
+			expansions = termIndex.fuzzy(word.substring(0, tilde), Integer.parseInt(word.substring(tilde + 1)));
+		}
+
+		BooleanQuery anyTermInDialogue = new BooleanQuery();
+		Query onlyTerm = null;
+		// a document matches at most once per expansion, so the sums bound the cost of the disjunction
+		long docFreq = 0;
+		long totalTermFreq = 0;
+
+		for (String expansion : expansions) {
+			Term term = new Term(fieldName, expansion);
+			int termDocFreq = reader.docFreq(term);
+
+			if (termDocFreq > 0) {
+				onlyTerm = termInDialogue(term);
+				anyTermInDialogue.add(onlyTerm, Occur.SHOULD);
+				docFreq += termDocFreq;
+				totalTermFreq += reader.totalTermFreq(term);
+			}
+		}
+
+		if (anyTermInDialogue.clauses().isEmpty()) {
+			return null;
+		}
+
+		Query query = anyTermInDialogue.clauses().size() == 1 ? onlyTerm : anyTermInDialogue;
+		return new ClauseCost(query, docFreq, totalTermFreq);
+	}
+
+	/**
+	 * @return the fuzzy word as its letters and edit count, e.g. {@code hermoine~2},
+	 * or null if it has no letters to expand
+	 */
+	private static String normalizeFuzzy(String word) {
+		Matcher fuzzy = FUZZY.matcher(word);
+		fuzzy.matches();
+
+		String letters = tokenChars(fuzzy.group(1), false);
+		if (letters.isEmpty()) {
+			return null;
+		}
+
+		int maxEdits = DEFAULT_MAX_EDITS;
+		if (!fuzzy.group(2).isEmpty()) {
+			if (fuzzy.group(2).length() > 1 || Integer.parseInt(fuzzy.group(2)) > MAX_EDITS) {
+				throw new IllegalArgumentException("At most " + MAX_EDITS + " edits are supported: " + word);
+			}
+			maxEdits = Integer.parseInt(fuzzy.group(2));
+		}
+		return letters + "~" + maxEdits;
+	}
+
+	/**
+	 * @return the word lowercased, keeping only the characters the tokenizer
+	 * keeps in a term, and optionally wildcards
+	 */
+	private static String tokenChars(String word, boolean keepWildcards) {
+		StringBuilder kept = new StringBuilder(word.length());
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if (Character.isLetter(c) || (keepWildcards && (c == WildcardQuery.WILDCARD_STRING || c == WildcardQuery.WILDCARD_CHAR))) {
+				kept.append(c);
+			}
+		}
+		return kept.toString().toLowerCase(Locale.ROOT);
+	}
+
+	private static boolean isWildcard(String word) {
+		return word.indexOf(WildcardQuery.WILDCARD_STRING) >= 0 || word.indexOf(WildcardQuery.WILDCARD_CHAR) >= 0;
+	}
+
+	private Query termInDialogue(Term term) {
+		return new PayloadTermQuery(term, new AveragePayloadFunction());
+	}
+
+	private Set<String> analyze(String queryText) throws IOException {
+		Set<String> terms = new LinkedHashSet<>();
+
+		try (TokenStream stream = analyzer.tokenStream(fieldName, queryText)) {
+			CharTermAttribute termAttr = stream.addAttribute(CharTermAttribute.class);
+			stream.reset();
+			while (stream.incrementToken()) {
+				terms.add(termAttr.toString());
+			}
+			stream.end();
+		}
+
+		return terms;
+	}
+
+	private static final class ClauseCost {
+		private final Query query;
+		private final long docFreq;
+		private final long totalTermFreq;
+
+		ClauseCost(Query query, long docFreq, long totalTermFreq) {
+			this.query = query;
+			this.docFreq = docFreq;
+			this.totalTermFreq = totalTermFreq;
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package ca.dougsparling.luceneblogpost.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.LevenshteinAutomata;
+
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatistics;
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatistics.TermStatistics;
+
+/**
+ * <p>An auxiliary index of every term that occurs in dialogue, searchable by
+ * character trigrams, for expanding misspelled or wildcard query terms into a
+ * handful of real terms.
+ *
+ * <p>Expanding against the main index would enumerate its term dictionary.
+ * Here each term is a tiny document of its trigrams (padded with {@code ^} and
+ * {@code $} to mark the word boundaries). A fuzzy or wildcard term only has to
+ * visit terms sharing trigrams with it, and at most {@link #MAX_CANDIDATES}
+ * of those are checked exactly: the ones sharing the most trigrams, and among
+ * equally good ones, those most used in dialogue. The cost of an expansion is
+ * therefore bounded however large the dictionary grows, without losing the
+ * terms most worth suggesting.
+ *
+ * <p>Each term index lives in its own subdirectory of the main index, named in
+ * the main index's commit user data under {@link #COMMIT_DATA_KEY}.
+ */
+public final class DialogueTermIndex implements Closeable {
+
+	public static final String COMMIT_DATA_KEY = "dialogueTermIndex";
+
+	/** The most terms a single fuzzy or wildcard term expands into. */
+	public static final int MAX_EXPANSIONS = 64;
+
+	/** The most trigram matches checked against the exact fuzzy or wildcard pattern. */
+	public static final int MAX_CANDIDATES = 1024;
+
+	private static final String DIRECTORY_PREFIX = "term_ngrams_";
+
+	private static final String TERM_FIELD = "term";
+	private static final String GRAM_FIELD = "gram";
+	private static final String FREQUENCY_FIELD = "freq";
+
+	private static final int GRAM_SIZE = 3;
+	private static final char START = '^';
+	private static final char END = '$';
+
+	// every candidate of a wildcard matches the same grams and so scores the
+	// same, which would otherwise leave the choice of candidates to docid order
+	private static final Sort BEST_CANDIDATES_FIRST = new Sort(
+			SortField.FIELD_SCORE, new SortField(FREQUENCY_FIELD, SortField.Type.LONG, true));
+
+	private final Directory directory;
+	private final DirectoryReader reader;
+	private final IndexSearcher searcher;
+
+	private DialogueTermIndex(Directory directory) throws IOException {
+		this.directory = directory;
+		this.reader = DirectoryReader.open(directory);
+		this.searcher = new IndexSearcher(reader);
+	}
+
+	/**
+	 * Builds a term index covering every term used in dialogue at least once.
+	 *
+	 * @return the name of the new term index, to be recorded in the main index's commit data
+	 */
+	public static String build(Path indexPath, DialogueTermStatistics statistics) throws IOException {
+		String name = DIRECTORY_PREFIX + Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+		IndexWriterConfig writerConfig = new IndexWriterConfig(new KeywordAnalyzer());
+		writerConfig.setOpenMode(OpenMode.CREATE);
+
+		try (Directory dir = FSDirectory.open(indexPath.resolve(name));
+				IndexWriter writer = new IndexWriter(dir, writerConfig)) {
+
+			for (String term : statistics.terms()) {
+				TermStatistics stats = statistics.get(term);
+				if (stats.getInDialogueFrequency() == 0) {
+					// can never score within dialogue, so not worth suggesting
+					continue;
+				}
+
+				Document document = new Document();
+				// doc values rather than a stored field, so checking a candidate doesn't decompress a block
+				document.add(new BinaryDocValuesField(TERM_FIELD, new BytesRef(term)));
+				document.add(new NumericDocValuesField(FREQUENCY_FIELD, stats.getInDialogueFrequency()));
+				for (String gram : grams(term)) {
+					document.add(new StringField(GRAM_FIELD, gram, Store.NO));
+				}
+				writer.addDocument(document);
+			}
+
+			writer.forceMerge(1);
+		}
+
+		return name;
+	}
+
+	/**
+	 * Opens the term index belonging to a commit of the main index.
+	 *
+	 * @return the term index, or null if the commit has none
+	 */
+	public static DialogueTermIndex open(Path indexPath, Map<String, String> commitData) throws IOException {
+		String name = commitData.get(COMMIT_DATA_KEY);
+		if (name == null) {
+			return null;
+		}
+		return new DialogueTermIndex(FSDirectory.open(indexPath.resolve(name)));
+	}
+
+	/**
+	 * Deletes term indexes other than the given one. Term indexes that are
+	 * still open can't always be deleted, and are left for a later attempt.
+	 */
+	public static void deleteUnreferenced(Path indexPath, String keepName) throws IOException {
+		try (Stream<Path> entries = Files.list(indexPath)) {
+			for (Path entry : (Iterable<Path>) entries::iterator) {
+				String name = entry.getFileName().toString();
+				if (name.startsWith(DIRECTORY_PREFIX) && !name.equals(keepName)) {
+					deleteRecursively(entry);
+				}
+			}
+		}
+	}
+
+	private static void deleteRecursively(Path dir) {
+		try (Stream<Path> files = Files.walk(dir)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(file);
+			}
+		} catch (IOException e) {
+			System.err.println("Could not delete old term index (" + dir + "): " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return terms within {@code maxEdits} edits of the given term, most used in dialogue first
+	 */
+	public List<String> fuzzy(String term, int maxEdits) throws IOException {
+		if (maxEdits > LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE) {
+			throw new IllegalArgumentException("maxEdits must be at most " + LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE);
+		}
+
+		List<String> grams = grams(term);
+
+		BooleanQuery sharedGrams = new BooleanQuery();
+		for (String gram : grams) {
+			sharedGrams.add(new TermQuery(new Term(GRAM_FIELD, gram)), Occur.SHOULD);
+		}
+		// an edit (counting a transposition as one) touches at most GRAM_SIZE + 1
+		// grams, so true matches always share at least this many
+		sharedGrams.setMinimumNumberShouldMatch(Math.max(1, grams.size() - maxEdits * (GRAM_SIZE + 1)));
+
+		CharacterRunAutomaton withinEdits = new CharacterRunAutomaton(new LevenshteinAutomata(term, true).toAutomaton(maxEdits));
+		return expand(sharedGrams, withinEdits);
+	}
+
+	/**
+	 * Expands a pattern where {@code *} matches any characters and {@code ?} a
+	 * single character.
+	 *
+	 * @return matching terms, most used in dialogue first
+	 * @throws IllegalArgumentException if the pattern has no run of three
+	 * literal characters (counting the start or end of the word), as it would
+	 * match too much of the dictionary to expand usefully
+	 */
+	public List<String> wildcard(String pattern) throws IOException {
+		BooleanQuery allGrams = new BooleanQuery();
+
+		String padded = START + pattern + END;
+		for (String literal : padded.split("[*?]")) {
+			for (int i = 0; i + GRAM_SIZE <= literal.length(); i++) {
+				allGrams.add(new TermQuery(new Term(GRAM_FIELD, literal.substring(i, i + GRAM_SIZE))), Occur.MUST);
+			}
+		}
+
+		if (allGrams.clauses().isEmpty()) {
+			throw new IllegalArgumentException("Pattern is too broad to expand: " + pattern);
+		}
+
+		CharacterRunAutomaton matchesPattern = new CharacterRunAutomaton(WildcardQuery.toAutomaton(new Term(TERM_FIELD, pattern)));
+		return expand(allGrams, matchesPattern);
+	}
+
+	private List<String> expand(BooleanQuery candidatesQuery, CharacterRunAutomaton exactMatch) throws IOException {
+		List<Expansion> matches = new ArrayList<>();
+		BinaryDocValues terms = MultiDocValues.getBinaryValues(reader, TERM_FIELD);
+
+		for (ScoreDoc candidate : searcher.search(candidatesQuery, MAX_CANDIDATES, BEST_CANDIDATES_FIRST).scoreDocs) {
+			String term = terms.get(candidate.doc).utf8ToString();
+
+			if (exactMatch.run(term)) {
+				long frequency = (Long) ((FieldDoc) candidate).fields[1];
+				matches.add(new Expansion(term, frequency));
+			}
+		}
+
+		matches.sort(Comparator.comparingLong((Expansion match) -> match.frequency).reversed());
+
+		List<String> expansions = new ArrayList<>();
+		for (int i = 0; i < matches.size() && i < MAX_EXPANSIONS; i++) {
+			expansions.add(matches.get(i).term);
+		}
+		return expansions;
+	}
+
+	private static List<String> grams(String term) {
+		String padded = START + term + END;
+
+		List<String> grams = new ArrayList<>();
+		for (int i = 0; i + GRAM_SIZE <= padded.length(); i++) {
+			grams.add(padded.substring(i, i + GRAM_SIZE));
+		}
+		return grams;
+	}
+
+	private static final class Expansion {
+		private final String term;
+		private final long frequency;
+
+		Expansion(String term, long frequency) {
+			this.term = term;
+			this.frequency = frequency;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+		directory.close();
+	}
+}
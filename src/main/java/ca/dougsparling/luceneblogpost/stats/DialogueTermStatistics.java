@@ -0,0 +1,306 @@
+package ca.dougsparling.luceneblogpost.stats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * <p>Corpus-wide dialogue statistics for every indexed term: how often it
+ * occurs inside and outside of dialogue, and the books in which it is spoken
+ * most often.
+ *
+ * <p>Statistics are gathered during analysis (see {@link
+ * DialogueTermStatisticsCollector}) and stored as a checksummed file alongside
+ * the segments of the index, so lookups are a hash map access rather than a
+ * walk over every payload in the postings. Each commit names its statistics
+ * file in its user data under {@link #COMMIT_DATA_KEY}, so the statistics
+ * always agree with the documents that were actually committed.
+ *
+ * <p>Instances are not thread-safe.
+ */
+public final class DialogueTermStatistics {
+
+	/**
+	 * Key in the index commit user data naming the statistics file that matches
+	 * the documents in that commit.
+	 */
+	public static final String COMMIT_DATA_KEY = "dialogueTermStatistics";
+
+	private static final String FILE_PREFIX = "dialogue_terms_";
+	private static final String FILE_EXTENSION = ".stats";
+	private static final String TEMP_EXTENSION = ".tmp";
+	private static final String CODEC_NAME = "DialogueTermStatistics";
+	private static final int VERSION_START = 0;
+	private static final int VERSION_CURRENT = VERSION_START;
+
+	private final int topBooksPerTerm;
+	private final Map<String, TermStatistics> terms = new HashMap<>();
+
+	/**
+	 * @param topBooksPerTerm how many books to remember for each term, ranked
+	 * by how often the term occurs in their dialogue
+	 */
+	public DialogueTermStatistics(int topBooksPerTerm) {
+		this.topBooksPerTerm = topBooksPerTerm;
+	}
+
+	/**
+	 * @return statistics for an analyzed term, or null if it was never indexed
+	 */
+	public TermStatistics get(String term) {
+		return terms.get(term);
+	}
+
+	public int size() {
+		return terms.size();
+	}
+
+	/**
+	 * @return every term with statistics, in no particular order
+	 */
+	public Set<String> terms() {
+		return Collections.unmodifiableSet(terms.keySet());
+	}
+
+	/**
+	 * Records the occurrences of a term within a single book.
+	 */
+	public void add(String term, String title, long inDialogue, long outsideDialogue) {
+		TermStatistics stats = terms.computeIfAbsent(term, t -> new TermStatistics());
+		stats.inDialogue += inDialogue;
+		stats.outsideDialogue += outsideDialogue;
+		stats.offerBook(title, inDialogue, topBooksPerTerm);
+	}
+
+	/**
+	 * @return an independent copy, e.g. to write out while indexing carries on
+	 * adding to the original
+	 */
+	public DialogueTermStatistics copy() {
+		DialogueTermStatistics copy = new DialogueTermStatistics(topBooksPerTerm);
+		for (Map.Entry<String, TermStatistics> entry : terms.entrySet()) {
+			TermStatistics from = entry.getValue();
+			TermStatistics into = new TermStatistics();
+			into.inDialogue = from.inDialogue;
+			into.outsideDialogue = from.outsideDialogue;
+			into.topTitles = Arrays.copyOf(from.topTitles, from.topSize);
+			into.topCounts = Arrays.copyOf(from.topCounts, from.topSize);
+			into.topSize = from.topSize;
+			copy.terms.put(entry.getKey(), into);
+		}
+		return copy;
+	}
+
+	/**
+	 * @return a file name for statistics written at the given indexing checkpoint
+	 */
+	public static String fileName(long checkpoint) {
+		return FILE_PREFIX + Long.toString(checkpoint, Character.MAX_RADIX) + FILE_EXTENSION;
+	}
+
+	/**
+	 * Writes statistics into the index directory. The file only appears under
+	 * its final name once it is completely written and synced.
+	 */
+	public void write(Directory dir, String fileName) throws IOException {
+		String tempFileName = fileName + TEMP_EXTENSION;
+
+		// titles are shared by many terms, so write each one once and refer to it by ordinal
+		Map<String, Integer> titleOrds = new HashMap<>();
+		List<String> titles = new ArrayList<>();
+		for (TermStatistics stats : terms.values()) {
+			for (int i = 0; i < stats.topSize; i++) {
+				if (!titleOrds.containsKey(stats.topTitles[i])) {
+					titleOrds.put(stats.topTitles[i], titles.size());
+					titles.add(stats.topTitles[i]);
+				}
+			}
+		}
+
+		if (Arrays.asList(dir.listAll()).contains(tempFileName)) {
+			dir.deleteFile(tempFileName);
+		}
+
+		try (IndexOutput out = dir.createOutput(tempFileName, IOContext.DEFAULT)) {
+			CodecUtil.writeHeader(out, CODEC_NAME, VERSION_CURRENT);
+			out.writeVInt(topBooksPerTerm);
+
+			out.writeVInt(titles.size());
+			for (String title : titles) {
+				out.writeString(title);
+			}
+
+			out.writeVInt(terms.size());
+			for (Map.Entry<String, TermStatistics> entry : terms.entrySet()) {
+				TermStatistics stats = entry.getValue();
+				out.writeString(entry.getKey());
+				out.writeVLong(stats.inDialogue);
+				out.writeVLong(stats.outsideDialogue);
+				out.writeVInt(stats.topSize);
+				for (int i = 0; i < stats.topSize; i++) {
+					out.writeVInt(titleOrds.get(stats.topTitles[i]));
+					out.writeVLong(stats.topCounts[i]);
+				}
+			}
+
+			CodecUtil.writeFooter(out);
+		}
+
+		dir.sync(Collections.singleton(tempFileName));
+		dir.renameFile(tempFileName, fileName);
+	}
+
+	/**
+	 * Reads the statistics belonging to an index commit.
+	 *
+	 * @return the statistics, or null if the commit has none
+	 */
+	public static DialogueTermStatistics read(Directory dir, Map<String, String> commitData) throws IOException {
+		String fileName = commitData.get(COMMIT_DATA_KEY);
+		return fileName == null ? null : read(dir, fileName);
+	}
+
+	public static DialogueTermStatistics read(Directory dir, String fileName) throws IOException {
+		try (ChecksumIndexInput in = dir.openChecksumInput(fileName, IOContext.READONCE)) {
+			CodecUtil.checkHeader(in, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+
+			DialogueTermStatistics statistics = new DialogueTermStatistics(in.readVInt());
+
+			String[] titles = new String[in.readVInt()];
+			for (int i = 0; i < titles.length; i++) {
+				titles[i] = in.readString();
+			}
+
+			int termCount = in.readVInt();
+			for (int t = 0; t < termCount; t++) {
+				TermStatistics stats = new TermStatistics();
+				String term = in.readString();
+				stats.inDialogue = in.readVLong();
+				stats.outsideDialogue = in.readVLong();
+				stats.topSize = in.readVInt();
+				// sized exactly, as books are no longer added once loaded for querying
+				stats.topTitles = new String[stats.topSize];
+				stats.topCounts = new long[stats.topSize];
+				for (int i = 0; i < stats.topSize; i++) {
+					stats.topTitles[i] = titles[in.readVInt()];
+					stats.topCounts[i] = in.readVLong();
+				}
+				statistics.terms.put(term, stats);
+			}
+
+			CodecUtil.checkFooter(in);
+			return statistics;
+		}
+	}
+
+	/**
+	 * Deletes statistics files other than the given one, such as those left
+	 * behind by earlier checkpoints or by a checkpoint that never committed.
+	 *
+	 * @param keepFileName the file to keep, or null to delete all of them
+	 */
+	public static void deleteUnreferenced(Directory dir, String keepFileName) throws IOException {
+		for (String fileName : dir.listAll()) {
+			if (fileName.startsWith(FILE_PREFIX) && !fileName.equals(keepFileName)) {
+				dir.deleteFile(fileName);
+			}
+		}
+	}
+
+	public static final class TermStatistics {
+
+		private long inDialogue;
+		private long outsideDialogue;
+
+		private static final String[] NO_TITLES = new String[0];
+		private static final long[] NO_COUNTS = new long[0];
+
+		// sorted by descending count; most terms occur in only a few books, so
+		// these grow as books are offered rather than starting at the limit
+		private String[] topTitles = NO_TITLES;
+		private long[] topCounts = NO_COUNTS;
+		private int topSize;
+
+		private TermStatistics() {
+		}
+
+		public long getInDialogueFrequency() {
+			return inDialogue;
+		}
+
+		public long getOutsideDialogueFrequency() {
+			return outsideDialogue;
+		}
+
+		/**
+		 * @return books in which this term is most often used in dialogue, most frequent first
+		 */
+		public List<BookFrequency> getTopBooks() {
+			List<BookFrequency> books = new ArrayList<>(topSize);
+			for (int i = 0; i < topSize; i++) {
+				books.add(new BookFrequency(topTitles[i], topCounts[i]));
+			}
+			return books;
+		}
+
+		private void offerBook(String title, long count, int maxBooks) {
+			if (count == 0 || maxBooks == 0) {
+				return;
+			}
+			if (topSize >= maxBooks && count <= topCounts[topSize - 1]) {
+				return;
+			}
+
+			if (topSize < maxBooks && topSize == topTitles.length) {
+				int newLength = Math.min(maxBooks, Math.max(1, topSize * 2));
+				topTitles = Arrays.copyOf(topTitles, newLength);
+				topCounts = Arrays.copyOf(topCounts, newLength);
+			}
+
+			int slot = Math.min(topSize, topTitles.length - 1);
+			while (slot > 0 && topCounts[slot - 1] < count) {
+				topTitles[slot] = topTitles[slot - 1];
+				topCounts[slot] = topCounts[slot - 1];
+				slot--;
+			}
+			topTitles[slot] = title;
+			topCounts[slot] = count;
+			topSize = Math.min(topSize + 1, topTitles.length);
+		}
+	}
+
+	public static final class BookFrequency {
+
+		private final String title;
+		private final long inDialogue;
+
+		private BookFrequency(String title, long inDialogue) {
+			this.title = title;
+			this.inDialogue = inDialogue;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public long getInDialogueFrequency() {
+			return inDialogue;
+		}
+
+		@Override
+		public String toString() {
+			return title + " (" + inDialogue + ")";
+		}
+	}
+}
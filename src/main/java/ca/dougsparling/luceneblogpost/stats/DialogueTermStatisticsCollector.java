@@ -0,0 +1,78 @@
+package ca.dougsparling.luceneblogpost.stats;
+
+import org.apache.lucene.analysis.util.CharArrayMap;
+
+import ca.dougsparling.luceneblogpost.filter.DialoguePayloadTokenFilter;
+
+/**
+ * <p>Accumulates {@link DialogueTermStatistics} as documents are analyzed.
+ *
+ * <p>{@link DialoguePayloadTokenFilter} reports each term as it is emitted.
+ * Counts for the document being analyzed are kept per thread, since
+ * {@link org.apache.lucene.index.IndexWriter#addDocument} analyzes on the
+ * calling thread. Once the document is added, the caller attributes them to a
+ * book with {@link #finishDocument(String)} on that same thread.
+ */
+public final class DialogueTermStatisticsCollector {
+
+	private static final int IN_DIALOGUE = 0;
+	private static final int OUTSIDE_DIALOGUE = 1;
+
+	private final DialogueTermStatistics statistics;
+
+	// keyed by char[] so that counting an already seen term doesn't allocate
+	private final ThreadLocal<CharArrayMap<long[]>> documentCounts =
+			ThreadLocal.withInitial(() -> new CharArrayMap<>(1024, false));
+
+	public DialogueTermStatisticsCollector(DialogueTermStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	public void record(char[] termBuffer, int termLength, boolean withinDialogue) {
+		CharArrayMap<long[]> counts = documentCounts.get();
+
+		long[] termCounts = counts.get(termBuffer, 0, termLength);
+		if (termCounts == null) {
+			char[] term = new char[termLength];
+			System.arraycopy(termBuffer, 0, term, 0, termLength);
+			termCounts = new long[2];
+			counts.put(term, termCounts);
+		}
+
+		termCounts[withinDialogue ? IN_DIALOGUE : OUTSIDE_DIALOGUE]++;
+	}
+
+	/**
+	 * Adds the terms recorded on this thread since the last finished document to
+	 * the statistics of the given book.
+	 */
+	public void finishDocument(String title) {
+		CharArrayMap<long[]> counts = documentCounts.get();
+
+		synchronized (statistics) {
+			CharArrayMap<long[]>.EntryIterator entries = counts.entrySet().iterator();
+			while (entries.hasNext()) {
+				String term = entries.nextKeyString();
+				long[] termCounts = entries.currentValue();
+				statistics.add(term, title, termCounts[IN_DIALOGUE], termCounts[OUTSIDE_DIALOGUE]);
+			}
+		}
+
+		counts.clear();
+	}
+
+	/**
+	 * Forgets terms recorded on this thread, e.g. when a document failed to index.
+	 */
+	public void discardDocument() {
+		documentCounts.get().clear();
+	}
+
+	/**
+	 * @return the collected statistics; callers must synchronize on it if
+	 * documents may still be finishing
+	 */
+	public DialogueTermStatistics getStatistics() {
+		return statistics;
+	}
+}
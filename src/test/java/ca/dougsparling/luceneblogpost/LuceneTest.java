@@ -2,14 +2,33 @@ package ca.dougsparling.luceneblogpost;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import java.util.Optional;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
@@ -17,6 +36,8 @@ import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.PositiveScoresOnlyCollector;
 import org.apache.lucene.search.Query;
@@ -24,15 +45,37 @@ import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.payloads.MinPayloadFunction;
 import org.apache.lucene.search.payloads.PayloadTermQuery;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
 import org.junit.Test;
 
+import ca.dougsparling.luceneblogpost.corpus.DialogueCorpusGenerator;
 import ca.dougsparling.luceneblogpost.search.DialogueAwareSimilarity;
+import ca.dougsparling.luceneblogpost.search.DialogueQueryPlanner;
+import ca.dougsparling.luceneblogpost.search.DialogueTermIndex;
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatistics;
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatistics.TermStatistics;
+import ca.dougsparling.luceneblogpost.stats.DialogueTermStatisticsCollector;
 
 public class LuceneTest {
 	
 	private static final String TEST_FIELD_NAME = "test";
+	
+	private final List<Path> tempDirectories = new ArrayList<>();
+
+	@After
+	public void deleteTempDirectories() throws IOException {
+		for (Path dir : tempDirectories) {
+			try (Stream<Path> files = Files.walk(dir)) {
+				for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+					Files.delete(file);
+				}
+			}
+		}
+	}
 
 	@Test
 	public void testDialogueAnalyzer() throws IOException, ParseException {
@@ -88,6 +131,313 @@ public class LuceneTest {
 		assertThat(topDocs.totalHits, is(0));
 	}
 
+	@Test
+	public void testQueryPlannerAnalyzesAndOrdersByDocFreq() throws IOException {
+		RAMDirectory inMemIndex = new RAMDirectory();
+		
+		addDocumentsToIndex(inMemIndex,
+				"\"Quoted words are common\", he said.",
+				"\"Quoted words again\", she said.",
+				"\"Rare words\", they said.");
+		
+		IndexSearcher searcher = buildTestSearcher(inMemIndex);
+		DialogueQueryPlanner planner = new DialogueQueryPlanner(CustomAnalyzers.dialogue(), TEST_FIELD_NAME);
+		
+		// uppercase and stop words are normalized the same way as at index time
+		Optional<Query> query = planner.plan(searcher.getIndexReader(), "The WORDS, and the Rare");
+		assertThat(query.isPresent(), is(true));
+		
+		BooleanClause[] clauses = ((BooleanQuery) query.get()).getClauses();
+		assertThat(clauses.length, is(2));
+		assertThat(((PayloadTermQuery) clauses[0].getQuery()).getTerm().text(), is("rare"));
+		assertThat(((PayloadTermQuery) clauses[1].getQuery()).getTerm().text(), is("words"));
+		assertThat(findTop10Docs(searcher, query.get()).totalHits, is(1));
+		
+		// a single term needs no conjunction
+		query = planner.plan(searcher.getIndexReader(), "Quoted");
+		assertThat(query.get() instanceof PayloadTermQuery, is(true));
+		
+		// a term missing from the index, or only stop words, means nothing to search
+		assertThat(planner.plan(searcher.getIndexReader(), "quoted unicorn").isPresent(), is(false));
+		assertThat(planner.plan(searcher.getIndexReader(), "the and of").isPresent(), is(false));
+	}
+
+	@Test
+	public void testCorpusGeneratorIsDeterministic() throws IOException {
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		ByteArrayOutputStream second = new ByteArrayOutputStream();
+		ByteArrayOutputStream otherSeed = new ByteArrayOutputStream();
+		
+		long written = new DialogueCorpusGenerator(42, 500, 0.5).writeDocument(3, first);
+		new DialogueCorpusGenerator(42, 500, 0.5).writeDocument(3, second);
+		new DialogueCorpusGenerator(43, 500, 0.5).writeDocument(3, otherSeed);
+		
+		assertThat(written, is((long) first.size()));
+		assertThat(Arrays.equals(first.toByteArray(), second.toByteArray()), is(true));
+		assertThat(Arrays.equals(first.toByteArray(), otherSeed.toByteArray()), is(false));
+		assertThat(new String(first.toByteArray(), StandardCharsets.UTF_8).contains("\""), is(true));
+	}
+
+	@Test
+	public void testDialogueTermStatistics() throws IOException {
+		DialogueTermStatisticsCollector collector = new DialogueTermStatisticsCollector(new DialogueTermStatistics(1));
+		Analyzer analyzer = new DialogueAnalyzer(collector);
+		
+		analyzeAll(analyzer, "\"Hello, hello\", said Bob. Hello again.");
+		collector.finishDocument("first");
+		analyzeAll(analyzer, "\"Hello there\", said Alice.");
+		collector.finishDocument("second");
+		
+		RAMDirectory dir = new RAMDirectory();
+		collector.getStatistics().write(dir, DialogueTermStatistics.fileName(1));
+		DialogueTermStatistics statistics = DialogueTermStatistics.read(dir, DialogueTermStatistics.fileName(1));
+		
+		TermStatistics hello = statistics.get("hello");
+		assertThat(hello.getInDialogueFrequency(), is(3L));
+		assertThat(hello.getOutsideDialogueFrequency(), is(1L));
+		assertThat(hello.getTopBooks().size(), is(1));
+		assertThat(hello.getTopBooks().get(0).getTitle(), is("first"));
+		assertThat(statistics.get("said").getInDialogueFrequency(), is(0L));
+		assertThat(statistics.get("said").getTopBooks().isEmpty(), is(true));
+		
+		// a resumed build keeps adding to the statistics it loaded
+		statistics.add("hello", "third", 5, 0);
+		
+		assertThat(statistics.get("hello").getInDialogueFrequency(), is(8L));
+		assertThat(statistics.get("hello").getTopBooks().get(0).getTitle(), is("third"));
+		
+		// top books grow up to the limit, keeping the most frequent
+		DialogueTermStatistics ranked = new DialogueTermStatistics(3);
+		long[] counts = { 2, 7, 1, 5, 9 };
+		for (int book = 0; book < counts.length; book++) {
+			ranked.add("word", "book" + book, counts[book], 0);
+		}
+		ranked.write(dir, DialogueTermStatistics.fileName(2));
+		assertThat(DialogueTermStatistics.read(dir, DialogueTermStatistics.fileName(2)).get("word").getTopBooks().toString(),
+				is("[book4 (9), book1 (7), book3 (5)]"));
+	}
+
+	@Test
+	public void testIndexingResumesFromCheckpoint() throws IOException, InterruptedException {
+		Path docs = createTempDirectory("docs");
+		Path index = createTempDirectory("index");
+		
+		for (String name : new String[] { "a.txt", "b.txt", "c.txt" }) {
+			Files.write(docs.resolve(name), "\"Hello there\", said someone.".getBytes(StandardCharsets.UTF_8));
+		}
+		try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(docs.resolve("books.zip")))) {
+			for (String name : new String[] { "x.txt", "y.txt" }) {
+				zip.putNextEntry(new ZipEntry(name));
+				zip.write("\"Hello there\", said someone.".getBytes(StandardCharsets.UTF_8));
+				zip.closeEntry();
+			}
+		}
+		
+		simulateInterruptedRun(index, docs, "a.txt", "books.zip:x.txt");
+		new LuceneIndexerApp(index).addToIndex(docs);
+		assertIndexedOnce(index, 5);
+		
+		// a checkpoint of another document root is not resumed, even with the same ids
+		simulateInterruptedRun(index, docs.resolve("elsewhere"), "a.txt", "stale.txt");
+		new LuceneIndexerApp(index).addToIndex(docs);
+		assertIndexedOnce(index, 5);
+	}
+
+	@Test
+	public void testIndexingStopsOnceWriterIsClosed() throws IOException {
+		DialogueTermStatisticsCollector collector = new DialogueTermStatisticsCollector(new DialogueTermStatistics(10));
+		IndexWriterConfig writerConfig = new IndexWriterConfig(new DialogueAnalyzer(collector));
+		writerConfig.setCommitOnClose(false);
+		
+		IndexWriter writer = new IndexWriter(new RAMDirectory(), writerConfig);
+		IndexingProgress progress = new IndexingProgress(writer, collector, Paths.get("docs"), Collections.emptyMap());
+		progress.addDocument("a.txt", "a.txt", titledDocument("a.txt"));
+		assertThat(progress.hasFailed(), is(false));
+		
+		// as after a checkpoint whose statistics couldn't be written
+		writer.rollback();
+		
+		try {
+			progress.checkpoint();
+			fail("checkpoint succeeded against a closed writer");
+		} catch (AlreadyClosedException e) {
+			// expected
+		}
+		assertThat(progress.hasFailed(), is(true));
+		
+		try {
+			progress.addDocument("b.txt", "b.txt", titledDocument("b.txt"));
+			fail("document added after indexing failed");
+		} catch (IOException e) {
+			assertThat(e.getCause() instanceof AlreadyClosedException, is(true));
+		}
+	}
+
+	/**
+	 * Simulates a run that checkpoints partway through, then dies before committing again.
+	 */
+	private void simulateInterruptedRun(Path index, Path docRoot, String... checkpointedIds) throws IOException {
+		try (Directory indexDir = FSDirectory.open(index)) {
+			DialogueTermStatisticsCollector collector = new DialogueTermStatisticsCollector(new DialogueTermStatistics(10));
+			IndexWriterConfig writerConfig = new IndexWriterConfig(new DialogueAnalyzer(collector));
+			writerConfig.setOpenMode(OpenMode.CREATE);
+			writerConfig.setCommitOnClose(false);
+			
+			try (IndexWriter writer = new IndexWriter(indexDir, writerConfig)) {
+				IndexingProgress progress = new IndexingProgress(writer, collector, docRoot, Collections.emptyMap());
+				for (String id : checkpointedIds) {
+					progress.addDocument(id, id, titledDocument(id));
+				}
+				progress.checkpoint();
+				progress.addDocument("uncommitted.txt", "uncommitted.txt", titledDocument("uncommitted.txt"));
+			}
+		}
+	}
+
+	private void assertIndexedOnce(Path index, int documents) throws IOException {
+		try (Directory indexDir = FSDirectory.open(index); DirectoryReader reader = DirectoryReader.open(indexDir)) {
+			Set<String> titles = new HashSet<>();
+			for (int doc = 0; doc < reader.maxDoc(); doc++) {
+				titles.add(reader.document(doc).get("title"));
+			}
+			
+			assertThat(reader.numDocs(), is(documents));
+			assertThat(titles.size(), is(documents));
+			
+			DialogueTermStatistics statistics = DialogueTermStatistics.read(indexDir, reader.getIndexCommit().getUserData());
+			assertThat(statistics.get("hello").getInDialogueFrequency(), is((long) documents));
+		}
+	}
+
+	@Test
+	public void testFuzzyAndWildcardExpansion() throws IOException {
+		DialogueTermStatistics statistics = new DialogueTermStatistics(1);
+		statistics.add("hermione", "book", 10, 2);
+		statistics.add("hermit", "book", 3, 0);
+		statistics.add("harry", "book", 20, 5);
+		statistics.add("narrator", "book", 0, 7);
+		
+		Path index = createTempDirectory("index");
+		String name = DialogueTermIndex.build(index, statistics);
+		
+		try (DialogueTermIndex termIndex = DialogueTermIndex.open(index, Collections.singletonMap(DialogueTermIndex.COMMIT_DATA_KEY, name))) {
+			assertThat(termIndex.fuzzy("hermoine", 2), is(Arrays.asList("hermione")));
+			assertThat(termIndex.fuzzy("hermoine", 1), is(Arrays.asList("hermione")));
+			assertThat(termIndex.fuzzy("harold", 1).isEmpty(), is(true));
+			assertThat(termIndex.wildcard("herm*"), is(Arrays.asList("hermione", "hermit")));
+			assertThat(termIndex.wildcard("*rry"), is(Arrays.asList("harry")));
+			// never spoken in dialogue, so never suggested
+			assertThat(termIndex.wildcard("narr*").isEmpty(), is(true));
+			
+			RAMDirectory inMemIndex = new RAMDirectory();
+			addDocumentsToIndex(inMemIndex, "\"Hermione and Harry\", he said.", "\"Hermit here\", she said.");
+			IndexSearcher searcher = buildTestSearcher(inMemIndex);
+			DialogueQueryPlanner planner = new DialogueQueryPlanner(CustomAnalyzers.dialogue(), TEST_FIELD_NAME);
+			
+			Optional<Query> query = planner.plan(searcher.getIndexReader(), termIndex, "Hermoine~ harry");
+			assertThat(findTop10Docs(searcher, query.get()).totalHits, is(1));
+			
+			query = planner.plan(searcher.getIndexReader(), termIndex, "herm*");
+			assertThat(findTop10Docs(searcher, query.get()).totalHits, is(2));
+			
+			// punctuation is stripped as the tokenizer would
+			query = planner.plan(searcher.getIndexReader(), termIndex, "Herm*,");
+			assertThat(findTop10Docs(searcher, query.get()).totalHits, is(2));
+			query = planner.plan(searcher.getIndexReader(), termIndex, "(Hermoine~1). harry");
+			assertThat(findTop10Docs(searcher, query.get()).totalHits, is(1));
+			
+			try {
+				planner.plan(searcher.getIndexReader(), termIndex, "hermoine~3");
+				fail("planned a fuzzy word with more edits than supported");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testWildcardExpansionKeepsMostUsedTermsOfLargeDictionaries() throws IOException {
+		DialogueTermStatistics statistics = new DialogueTermStatistics(1);
+		for (int i = 0; i < 5000; i++) {
+			statistics.add("herm" + i, "book", 1, 0);
+		}
+		for (int i = 0; i < 5; i++) {
+			statistics.add("hermione" + i, "book", 1000000 - i, 0);
+		}
+		
+		Path index = createTempDirectory("index");
+		String name = DialogueTermIndex.build(index, statistics);
+		
+		try (DialogueTermIndex termIndex = DialogueTermIndex.open(index, Collections.singletonMap(DialogueTermIndex.COMMIT_DATA_KEY, name))) {
+			List<String> expansions = termIndex.wildcard("herm*");
+			assertThat(expansions.size(), is(DialogueTermIndex.MAX_EXPANSIONS));
+			assertThat(expansions.subList(0, 5), is(Arrays.asList("hermione0", "hermione1", "hermione2", "hermione3", "hermione4")));
+		}
+	}
+
+	@Test
+	public void testIndexGenerationsSwapWithoutDisturbingQueries() throws IOException, InterruptedException {
+		Path docs = createTempDirectory("docs");
+		Path index = createTempDirectory("index");
+		
+		Files.write(docs.resolve("first.txt"), "\"Hello there\", said someone.".getBytes(StandardCharsets.UTF_8));
+		new LuceneIndexerApp(index).addToIndex(docs);
+		
+		try (Directory indexDir = FSDirectory.open(index)) {
+			IndexGenerationManager generations = new IndexGenerationManager(index, indexDir, generation -> {});
+			IndexGeneration first = generations.acquire();
+			
+			// an unchanged index is not reopened
+			generations.maybeRefresh();
+			assertThat(generations.acquire(), is(first));
+			generations.release(first);
+			
+			Files.write(docs.resolve("second.txt"), "\"Goodbye there\", said someone.".getBytes(StandardCharsets.UTF_8));
+			new LuceneIndexerApp(index).addToIndex(docs);
+			generations.maybeRefresh();
+			
+			IndexGeneration second = generations.acquire();
+			assertThat(second == first, is(false));
+			assertThat(second.getReader().numDocs(), is(2));
+			assertThat(second.getTermStatistics().get("goodbye").getInDialogueFrequency(), is(1L));
+			
+			// the first generation stays usable until its last user lets go of it
+			assertThat(first.getReader().numDocs(), is(1));
+			assertThat(first.getTermIndex().wildcard("hel*"), is(Arrays.asList("hello")));
+			generations.release(first);
+			assertThat(first.getReader().getRefCount(), is(0));
+			
+			generations.release(second);
+			generations.close();
+		}
+	}
+
+	/**
+	 * For tests that need a real filesystem; deleted after the test.
+	 */
+	private Path createTempDirectory(String prefix) throws IOException {
+		Path dir = Files.createTempDirectory(prefix);
+		tempDirectories.add(dir);
+		return dir;
+	}
+
+	private Document titledDocument(String title) {
+		Document document = new Document();
+		document.add(new StringField("title", title, Store.YES));
+		document.add(new TextField("body", "\"Hello there\", said someone.", Store.NO));
+		return document;
+	}
+
+	private void analyzeAll(Analyzer analyzer, String text) throws IOException {
+		try (TokenStream stream = analyzer.tokenStream(TEST_FIELD_NAME, text)) {
+			stream.reset();
+			while (stream.incrementToken()) {
+				// statistics are collected as a side effect
+			}
+			stream.end();
+		}
+	}
+
 	private IndexSearcher buildTestSearcher(RAMDirectory inMemIndex)
 			throws IOException {
 		IndexSearcher searcher = new IndexSearcher(DirectoryReader.open(inMemIndex));
@@ -96,6 +446,10 @@ public class LuceneTest {
 	}
 
 	private void addDocumentToIndex(Directory indexDir, String text) throws IOException {
+		addDocumentsToIndex(indexDir, text);
+	}
+
+	private void addDocumentsToIndex(Directory indexDir, String... texts) throws IOException {
 		Analyzer indexAnalyzer = CustomAnalyzers.dialogue();
 
 		IndexWriterConfig writerConfig = new IndexWriterConfig(indexAnalyzer);
@@ -104,9 +458,11 @@ public class LuceneTest {
 
 		try (IndexWriter writer = new IndexWriter(indexDir, writerConfig)) {
 
-			Document test = new Document();
-			test.add(new TextField(TEST_FIELD_NAME, text, Store.NO));
-			writer.addDocument(test);
+			for (String text : texts) {
+				Document test = new Document();
+				test.add(new TextField(TEST_FIELD_NAME, text, Store.NO));
+				writer.addDocument(test);
+			}
 
 			writer.forceMerge(1);
 		}